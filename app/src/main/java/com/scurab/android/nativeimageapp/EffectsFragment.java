@@ -26,6 +26,7 @@ public class EffectsFragment extends Fragment {
     public static final String ROTATE90SAVEMEMORY = "rotate90savememory";
     public static final String ROTATE90FAST = "rotate90fast";
     private static final String ROTATE180 = "rotate180";
+    private static final String CHAIN = "brightness+contrast+gamma+grayScale";
     private final static String[] EFFECTS = new String[]{
             "--",
             "grayScale",
@@ -37,6 +38,7 @@ public class EffectsFragment extends Fragment {
             "flipv",
             "fliph",
             "naiveResize",
+            CHAIN,
             ROTATE90SAVEMEMORY,
             ROTATE90FAST,
             ROTATE180,
@@ -96,7 +98,8 @@ public class EffectsFragment extends Fragment {
 
     private void releaseBitmap() {
         if (mBitmap != null) {
-            mBitmap.recycle();
+            mImageView.setImageBitmap(null);
+            NativeImage.releaseBitmap(mBitmap);
             mBitmap = null;
         }
     }
@@ -144,6 +147,13 @@ public class EffectsFragment extends Fragment {
                     effectBuilder.naiveDownscale(metaData.width / 2, metaData.height / 2);
                 }
                 break;
+            case CHAIN:
+                effectBuilder
+                        .brightness(10)
+                        .contrast(10)
+                        .gamma(0.75f)
+                        .grayScale();
+                break;
         }
         mDialog = ProgressDialog.show(getContext(), effect, null, true, false);
         releaseBitmap();
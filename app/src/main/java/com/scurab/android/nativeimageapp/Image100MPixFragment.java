@@ -2,6 +2,9 @@ package com.scurab.android.nativeimageapp;
 
 import android.app.ProgressDialog;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
@@ -16,6 +19,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.scurab.android.nativeimage.NativeImage;
+import com.scurab.android.nativeimage.TileRenderer;
+
+import java.util.ArrayList;
 
 /**
  * Created by JBruchanov on 15/04/2017.
@@ -35,6 +41,11 @@ public class Image100MPixFragment extends Fragment {
     
     private String mImageFile;
     private AsyncTask<Void, Void, Bitmap> mTask;
+    private TileRenderer mRenderer;
+    private Canvas mCanvas;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mViewport = new Rect();
+    private final ArrayList<TileRenderer.Tile> mTiles = new ArrayList<>();
 
 
     @Nullable
@@ -79,7 +90,7 @@ public class Image100MPixFragment extends Fragment {
     }
 
     private void onUpdatePreview() {
-        if (mImage != null && mBitmap != null) {
+        if (mImage != null && mBitmap != null && mRenderer != null) {
             final NativeImage.MetaData metaData = mImage.getMetaData();
             int offsetX = (int) ((metaData.width - mBitmap.getWidth()) / 100f * mOffsetX.getProgress());
             int offsetY = (int) ((metaData.height - mBitmap.getHeight()) / 100f * mOffsetY.getProgress());
@@ -92,12 +103,36 @@ public class Image100MPixFragment extends Fragment {
             if (offsetY + scaledHeight > metaData.height) {
                 offsetY = metaData.height - scaledHeight;
             }
-            mImage.setScaledPixels(mBitmap, offsetX, offsetY, scaledWidth, scaledHeight);
+            drawTiles(offsetX, offsetY, scale);
             Log.d("Preview", String.format("Offset x:%s y:%s", offsetX, offsetY));
             mPreview.setData(metaData.width, metaData.height, offsetX, offsetY, mBitmap.getWidth(), mBitmap.getHeight(), scale);
         }
     }
 
+    /**
+     * Draw tiles from nearest power of 2 zoom level, remaining scale is done by canvas,
+     * so panning renders only tiles which were not visible before
+     */
+    private void drawTiles(int offsetX, int offsetY, float scale) {
+        final int zoom = (int) Math.floor(Math.log(scale) / Math.log(2));
+        final float levelScale = (float) Math.pow(2, zoom);
+        final float left = offsetX / levelScale;
+        final float top = offsetY / levelScale;
+        mViewport.set((int) left, (int) top,
+                (int) Math.ceil((offsetX + mBitmap.getWidth() * scale) / levelScale),
+                (int) Math.ceil((offsetY + mBitmap.getHeight() * scale) / levelScale));
+        mTiles.clear();
+        mRenderer.getTiles(zoom, mViewport, mTiles);
+        mCanvas.save();
+        mCanvas.scale(levelScale / scale, levelScale / scale);
+        mCanvas.translate(-left, -top);
+        for (TileRenderer.Tile tile : mTiles) {
+            mCanvas.drawBitmap(tile.bitmap, tile.left, tile.top, mPaint);
+        }
+        mCanvas.restore();
+        mImageView.invalidate();
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -112,9 +147,14 @@ public class Image100MPixFragment extends Fragment {
             mDialog = null;
         }
         if (mBitmap != null) {
-            mBitmap.recycle();
-            mBitmap = null;
             mImageView.setImageBitmap(null);
+            NativeImage.releaseBitmap(mBitmap);
+            mBitmap = null;
+            mCanvas = null;
+        }
+        if (mRenderer != null) {
+            mRenderer.release();
+            mRenderer = null;
         }
         if (mImage != null) {
             if (mTask != null) {
@@ -152,7 +192,7 @@ public class Image100MPixFragment extends Fragment {
                 @Override
                 protected void onCancelled() {
                     if (mBitmap != null) {
-                        mBitmap.recycle();
+                        NativeImage.releaseBitmap(mBitmap);
                         mBitmap = null;
                     }
                     mImage.dispose();
@@ -167,6 +207,8 @@ public class Image100MPixFragment extends Fragment {
                             Toast.makeText(getActivity(), mError.getMessage(), Toast.LENGTH_LONG).show();
                         }
                     } else {
+                        mRenderer = new TileRenderer(mImage);
+                        mCanvas = new Canvas(bitmap);
                         mImageView.setImageBitmap(bitmap);
                         mPreview.setImageBitmap(mImage.asScaledBitmap(getResources().getDisplayMetrics().widthPixels / 2, 0));
                         final NativeImage.MetaData metaData = mImage.getMetaData();
@@ -6,6 +6,9 @@ import android.support.v4.app.FragmentTransaction;
 import android.support.v7.app.AppCompatActivity;
 import android.widget.Toast;
 
+import com.scurab.android.nativeimage.LruBitmapPool;
+import com.scurab.android.nativeimage.NativeImage;
+
 import org.apache.commons.io.IOUtils;
 
 import java.io.File;
@@ -20,6 +23,8 @@ public class MainActivity extends AppCompatActivity {
     public final static String LARGE_IMAGE_200MPIX = "200mpix.jpg";
     public final static String LARGE_IMAGE_100MPIX = "100mpix.jpg";
 
+    private static final long BITMAP_POOL_SIZE = 32L * 1024 * 1024;
+
     private HashMap<String, String> mMap = new HashMap<>();
     private static final String[] FILES = new String[]{"gradient.png", IMAGE_1, LARGE_IMAGE_100MPIX, LARGE_IMAGE_200MPIX};
 
@@ -27,6 +32,10 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        if (NativeImage.getBitmapPool() == null) {
+            //previews are recreated after every effect, reuse them
+            NativeImage.setBitmapPool(new LruBitmapPool(BITMAP_POOL_SIZE));
+        }
         try {
             copyAssets();
         } catch (IOException e) {
@@ -65,6 +74,12 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        NativeImage.getBitmapPool().clear();
+    }
+
     public String getImagePath(String image) {
         return mMap.get(image);
     }
@@ -0,0 +1,33 @@
+package com.scurab.android.nativeimage;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Source of reusable bitmaps, see {@link NativeImage#setBitmapPool(BitmapPool)} and {@link LruBitmapPool}.
+ * Implementation must be thread safe, bitmaps are taken from any thread.
+ */
+public interface BitmapPool {
+
+    /**
+     * Get bitmap of exactly same size and config, content is undefined
+     * @param width
+     * @param height
+     * @param config
+     * @return null if there is no matching bitmap
+     */
+    @Nullable
+    Bitmap get(int width, int height, @NonNull Bitmap.Config config);
+
+    /**
+     * Return bitmap for reuse, it must not be used by caller anymore, pool might recycle it
+     * @param bitmap
+     */
+    void put(@NonNull Bitmap bitmap);
+
+    /**
+     * Recycle all pooled bitmaps
+     */
+    void clear();
+}
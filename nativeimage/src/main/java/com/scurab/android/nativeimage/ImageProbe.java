@@ -0,0 +1,150 @@
+package com.scurab.android.nativeimage;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads just image header to get format and size, file is not decoded.
+ * Format is detected by magic bytes, PNG size is taken from IHDR chunk, JPEG size from first SOFn segment.
+ */
+final class ImageProbe {
+
+    private static final int BUFFER_SIZE = 4 * 1024;
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int PNG_IHDR = ('I' << 24) | ('H' << 16) | ('D' << 8) | 'R';
+    private static final int JPEG_SOI = 0xFFD8;
+    private static final int PNG_COLOR_GRAY = 0;
+    private static final int PNG_COLOR_RGB = 2;
+    private static final int PNG_COLOR_PALETTE = 3;
+    private static final int PNG_COLOR_GRAY_ALPHA = 4;
+    private static final int PNG_COLOR_RGBA = 6;
+
+    private ImageProbe() {
+    }
+
+    /**
+     * @param path
+     * @return
+     * @throws IllegalStateException if file can't be read
+     * @throws IllegalArgumentException if format is not JPEG or PNG or header is invalid
+     */
+    @NonNull
+    static NativeImage.ImageInfo probe(@NonNull String path) {
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE));
+            final int magic = input.readUnsignedShort();
+            if (magic == JPEG_SOI) {
+                return readJpeg(input);
+            } else if (magic == (((PNG_SIGNATURE[0] & 0xFF) << 8) | PNG_SIGNATURE[1])) {
+                return readPng(input);
+            }
+            throw new IllegalArgumentException("Unknown image format, only JPEG and PNG are supported");
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Invalid image header", e);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open file", e);
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Rest of signature, then IHDR must be first chunk
+     */
+    private static NativeImage.ImageInfo readPng(@NonNull DataInputStream input) throws IOException {
+        for (int i = 2; i < PNG_SIGNATURE.length; i++) {
+            if (input.readByte() != PNG_SIGNATURE[i]) {
+                throw new IllegalArgumentException("Unknown image format, only JPEG and PNG are supported");
+            }
+        }
+        input.readInt();//chunk length
+        if (input.readInt() != PNG_IHDR) {
+            throw new IllegalArgumentException("Invalid PNG, IHDR is not first chunk");
+        }
+        final int width = input.readInt();
+        final int height = input.readInt();
+        final int bitDepth = input.readUnsignedByte();
+        final int colorType = input.readUnsignedByte();
+        final int channels;
+        switch (colorType) {
+            case PNG_COLOR_GRAY:
+                channels = 1;
+                break;
+            case PNG_COLOR_RGB:
+            case PNG_COLOR_PALETTE:
+                channels = 3;
+                break;
+            case PNG_COLOR_GRAY_ALPHA:
+                channels = 2;
+                break;
+            case PNG_COLOR_RGBA:
+                channels = 4;
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Invalid PNG color type:%s", colorType));
+        }
+        final boolean alpha = colorType == PNG_COLOR_GRAY_ALPHA || colorType == PNG_COLOR_RGBA;
+        return new NativeImage.ImageInfo(alpha ? NativeImage.Format.PNG_RGBA : NativeImage.Format.PNG_RGB,
+                width, height, channels, bitDepth);
+    }
+
+    /**
+     * Skip segments until SOFn, which has [precision, height, width, components]
+     */
+    private static NativeImage.ImageInfo readJpeg(@NonNull DataInputStream input) throws IOException {
+        while (true) {
+            int marker = input.readUnsignedByte();
+            if (marker != 0xFF) {
+                throw new IllegalArgumentException("Invalid JPEG, marker expected");
+            }
+            //any number of fill bytes can precede marker
+            while ((marker = input.readUnsignedByte()) == 0xFF) {
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                //standalone markers without length
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                throw new IllegalArgumentException("Invalid JPEG, SOF segment not found");
+            }
+            final int length = input.readUnsignedShort();
+            if (length < 2) {
+                throw new IllegalArgumentException("Invalid JPEG segment length");
+            }
+            //SOF0 - SOF15 except DHT, JPG and DAC
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                final int bitDepth = input.readUnsignedByte();
+                final int height = input.readUnsignedShort();
+                final int width = input.readUnsignedShort();
+                final int channels = input.readUnsignedByte();
+                return new NativeImage.ImageInfo(NativeImage.Format.JPEG_RGB, width, height, channels, bitDepth);
+            }
+            skipFully(input, length - 2);
+        }
+    }
+
+    private static void skipFully(@NonNull DataInputStream input, int bytes) throws IOException {
+        while (bytes > 0) {
+            final int skipped = input.skipBytes(bytes);
+            if (skipped <= 0) {
+                //skipBytes returns 0 also at the end of stream
+                input.readByte();
+                bytes--;
+            } else {
+                bytes -= skipped;
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.scurab.android.nativeimage;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * {@link BitmapPool} bounded by bytes and number of bitmaps, least recently returned bitmaps are recycled first.
+ * Bitmaps are matched by exact size and config, so pool is supposed to be small, lookup is linear.
+ */
+public class LruBitmapPool implements BitmapPool {
+
+    public static final int DEFAULT_MAX_COUNT = 16;
+
+    private final long mMaxBytes;
+    private final int mMaxCount;
+    /**
+     * Oldest first
+     */
+    private final ArrayDeque<Bitmap> mBitmaps = new ArrayDeque<>();
+    private long mBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    public LruBitmapPool(long maxBytes) {
+        this(maxBytes, DEFAULT_MAX_COUNT);
+    }
+
+    /**
+     * @param maxBytes max size of all pooled bitmaps
+     * @param maxCount max number of pooled bitmaps
+     */
+    public LruBitmapPool(long maxBytes, int maxCount) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException(String.format("Invalid maxBytes:%s", maxBytes));
+        }
+        if (maxCount < 0) {
+            throw new IllegalArgumentException(String.format("Invalid maxCount:%s", maxCount));
+        }
+        mMaxBytes = maxBytes;
+        mMaxCount = maxCount;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Bitmap get(int width, int height, @NonNull Bitmap.Config config) {
+        //most recently returned first
+        final Iterator<Bitmap> iterator = mBitmaps.descendingIterator();
+        while (iterator.hasNext()) {
+            final Bitmap bitmap = iterator.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+                iterator.remove();
+                mBytes -= getBytes(bitmap);
+                mHitCount++;
+                return bitmap;
+            }
+        }
+        mMissCount++;
+        return null;
+    }
+
+    @Override
+    public synchronized void put(@NonNull Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        final long bytes = getBytes(bitmap);
+        if (bytes > mMaxBytes || mMaxCount == 0) {
+            bitmap.recycle();
+            mEvictionCount++;
+            return;
+        }
+        mBitmaps.add(bitmap);
+        mBytes += bytes;
+        while (mBytes > mMaxBytes || mBitmaps.size() > mMaxCount) {
+            final Bitmap evicted = mBitmaps.poll();
+            mBytes -= getBytes(evicted);
+            evicted.recycle();
+            mEvictionCount++;
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (Bitmap bitmap : mBitmaps) {
+            bitmap.recycle();
+        }
+        mBitmaps.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Get size of pooled bitmaps
+     * @return
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized int getCount() {
+        return mBitmaps.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Get number of recycled bitmaps, which didn't fit into pool
+     * @return
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    private static long getBytes(@NonNull Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,161 @@
+package com.scurab.android.nativeimage;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Cheap access to /proc/meminfo.
+ * File is kept open and read into reusable buffer, values are cached for {@link #getRefreshInterval()},
+ * so there is no allocation in steady state.
+ */
+public final class MemInfo {
+
+    public static final long DEFAULT_REFRESH_INTERVAL = 1000;
+
+    private static final String PROC_MEMINFO = "/proc/meminfo";
+    private static final byte[] MEM_TOTAL = "MemTotal:".getBytes();
+    private static final byte[] MEM_AVAILABLE = "MemAvailable:".getBytes();
+    private static final byte[] MEM_FREE = "MemFree:".getBytes();
+    private static final byte[] BUFFERS = "Buffers:".getBytes();
+    private static final byte[] CACHED = "Cached:".getBytes();
+
+    private static final byte[] sBuffer = new byte[8 * 1024];
+    private static RandomAccessFile sFile;
+    private static long sRefreshInterval = DEFAULT_REFRESH_INTERVAL;
+    private static long sLastRefresh = -1;
+    private static long sTotal;
+    private static long sAvailable;
+
+    private MemInfo() {
+    }
+
+    /**
+     * Get total device memory (MemTotal) in bytes
+     * @return 0 if unknown
+     */
+    public static synchronized long getTotal() {
+        refreshIfNeeded();
+        return sTotal;
+    }
+
+    /**
+     * Get memory available for new allocations (MemAvailable) in bytes.
+     * On old kernels without MemAvailable, MemFree + Buffers + Cached is used.
+     * @return 0 if unknown
+     */
+    public static synchronized long getAvailable() {
+        refreshIfNeeded();
+        return sAvailable;
+    }
+
+    /**
+     * Set how long are values cached
+     * @param intervalMs 0 to read file on every call
+     */
+    public static synchronized void setRefreshInterval(long intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException(String.format("Invalid interval:%s", intervalMs));
+        }
+        sRefreshInterval = intervalMs;
+    }
+
+    public static synchronized long getRefreshInterval() {
+        return sRefreshInterval;
+    }
+
+    /**
+     * Force reading of current values on next call
+     */
+    public static synchronized void invalidate() {
+        sLastRefresh = -1;
+    }
+
+    private static void refreshIfNeeded() {
+        final long now = SystemClock.elapsedRealtime();
+        if (sLastRefresh < 0 || now - sLastRefresh >= sRefreshInterval) {
+            read();
+            sLastRefresh = now;
+        }
+    }
+
+    private static void read() {
+        int length = 0;
+        try {
+            if (sFile == null) {
+                sFile = new RandomAccessFile(PROC_MEMINFO, "r");
+            }
+            sFile.seek(0);
+            int read;
+            while (length < sBuffer.length && (read = sFile.read(sBuffer, length, sBuffer.length - length)) > 0) {
+                length += read;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+            //keep last known values
+            return;
+        }
+        long total = 0, available = -1, free = 0, buffers = 0, cached = 0;
+        int lineStart = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || sBuffer[i] == '\n') {
+                if (startsWith(lineStart, i, MEM_TOTAL)) {
+                    total = parseKb(lineStart + MEM_TOTAL.length, i);
+                } else if (startsWith(lineStart, i, MEM_AVAILABLE)) {
+                    available = parseKb(lineStart + MEM_AVAILABLE.length, i);
+                } else if (startsWith(lineStart, i, MEM_FREE)) {
+                    free = parseKb(lineStart + MEM_FREE.length, i);
+                } else if (startsWith(lineStart, i, BUFFERS)) {
+                    buffers = parseKb(lineStart + BUFFERS.length, i);
+                } else if (startsWith(lineStart, i, CACHED)) {
+                    cached = parseKb(lineStart + CACHED.length, i);
+                }
+                lineStart = i + 1;
+            }
+        }
+        sTotal = total;
+        sAvailable = available >= 0 ? available : free + buffers + cached;
+    }
+
+    private static boolean startsWith(int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (sBuffer[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse value like "   1234567 kB"
+     * @return value in bytes
+     */
+    private static long parseKb(int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            final byte c = sBuffer[i];
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+            } else if (c != ' ' && c != '\t') {
+                break;
+            }
+        }
+        return value * 1024;
+    }
+
+    private static void close() {
+        if (sFile != null) {
+            try {
+                sFile.close();
+            } catch (IOException e) {
+                //ignore
+            }
+            sFile = null;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.scurab.android.nativeimage;
+
+import android.annotation.SuppressLint;
+import android.support.annotation.FloatRange;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for native allocations.
+ * Every load/reallocating operation reserves its bytes upfront, if there is not enough memory in budget,
+ * caller waits until other image is disposed (or shrunk) or until timeout expires, then {@link OutOfMemoryError} is thrown.
+ * Set it via {@link NativeImage#setMemoryBudget(MemoryBudget)}.
+ * <p>
+ * Default budget has no timeout (fails immediately) and limit based on device memory (50%, 70% or 85% of MemTotal).
+ * Besides the limit, every reservation must also fit into current MemAvailable (see {@link MemInfo})
+ * minus small margin, so allocation doesn't start when the system is already out of memory.
+ */
+public class MemoryBudget {
+
+    /**
+     * Timeout value to wait until memory is available without any limit
+     */
+    public static final long WAIT_FOREVER = -1;
+
+    private static final long GiB = 1024L * 1024 * 1024;
+    private static final float MiB = 1024f * 1024f;
+    /**
+     * Min time to wait before MemAvailable is checked again, it changes without any notification,
+     * so waiting threads poll it, but not more often than it's refreshed
+     */
+    private static final long MIN_POLL_INTERVAL = 100;
+    /**
+     * Bytes of MemAvailable which are never reserved, MemAvailable is just an estimate
+     */
+    static final long AVAILABLE_MARGIN = 32L * 1024 * 1024;
+
+    private final long mLimitBytes;
+    private final float mLimitRatio;
+    private final long mTimeoutMs;
+    private final boolean mFair;
+    private final MemorySource mMemory;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mChanged = mLock.newCondition();
+    private final ArrayDeque<Object> mQueue = new ArrayDeque<>();
+    private long mReservedBytes;
+
+    private MemoryBudget(Builder builder) {
+        mLimitBytes = builder.mLimitBytes;
+        mLimitRatio = builder.mLimitRatio;
+        mTimeoutMs = builder.mTimeoutMs;
+        mFair = builder.mFair;
+        mMemory = builder.mMemory;
+    }
+
+    /**
+     * Get max number of bytes which can be allocated by all images together
+     * @return
+     */
+    public long getLimitBytes() {
+        if (mLimitBytes > 0) {
+            return mLimitBytes;
+        }
+        final double deviceMemory = getDeviceMemory();
+        double ratio = mLimitRatio;
+        if (ratio <= 0) {
+            if (deviceMemory < GiB) {
+                ratio = 0.5;
+            } else if (deviceMemory < 2 * GiB) {
+                ratio = 0.7;
+            } else {
+                ratio = 0.85;
+            }
+        }
+        return (long) (deviceMemory * ratio);
+    }
+
+    public long getTimeout() {
+        return mTimeoutMs;
+    }
+
+    public boolean isFair() {
+        return mFair;
+    }
+
+    /**
+     * Get bytes reserved for operations in progress
+     * @return
+     */
+    public long getReservedBytes() {
+        mLock.lock();
+        try {
+            return mReservedBytes;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Reserve bytes, blocks until there is enough memory or timeout expires
+     * @param bytes
+     * @param tracker currently allocated memory
+     * @return reserved bytes, must be passed to {@link #release(long)}
+     * @throws OutOfMemoryError if memory can't be reserved
+     */
+    @SuppressLint("DefaultLocale")
+    long reserve(long bytes, @NonNull MemoryTracker tracker) {
+        if (bytes <= 0) {
+            return 0;
+        }
+        final long limit = getLimitBytes();
+        if (bytes > limit) {
+            throw new OutOfMemoryError(String.format("Allocating needs %.2f MB, device has:%.2f MB, getting close to total device memory means that OS will most likely kill our process!", bytes / MiB, getDeviceMemory() / MiB));
+        }
+        mLock.lock();
+        try {
+            Object ticket = null;
+            if (mFair) {
+                ticket = new Object();
+                mQueue.add(ticket);
+            }
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(mTimeoutMs);
+                final long pollNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(MIN_POLL_INTERVAL, mMemory.getRefreshInterval()));
+                while ((ticket != null && mQueue.peek() != ticket)
+                        || tracker.getTotalBytes() + mReservedBytes + bytes > limit
+                        || !isAvailable(bytes)) {
+                    if (mTimeoutMs == WAIT_FOREVER) {
+                        mChanged.awaitNanos(pollNanos);
+                    } else if (nanos > 0) {
+                        final long wait = Math.min(nanos, pollNanos);
+                        nanos -= wait - mChanged.awaitNanos(wait);
+                    } else {
+                        throw new OutOfMemoryError(String.format("Allocating needs %.2f MB, allocated:%.2f MB, reserved:%.2f MB, budget:%.2f MB, available:%.2f MB, timeout:%sms", bytes / MiB, tracker.getTotalBytes() / MiB, mReservedBytes / MiB, limit / MiB, mMemory.getAvailable() / MiB, mTimeoutMs));
+                    }
+                }
+                mReservedBytes += bytes;
+                return bytes;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OutOfMemoryError(String.format("Interrupted while waiting for %.2f MB", bytes / MiB));
+            } finally {
+                if (ticket != null) {
+                    mQueue.remove(ticket);
+                    //next one in queue might fit now
+                    mChanged.signalAll();
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Release reservation, real allocation must be already tracked at this point
+     * @param bytes value returned by {@link #reserve(long, MemoryTracker)}
+     */
+    void release(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        //memory has been allocated meanwhile, next check must see it in MemAvailable
+        mMemory.invalidate();
+        mLock.lock();
+        try {
+            mReservedBytes -= bytes;
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Wake up waiting threads, some image has been disposed or shrunk
+     */
+    void onMemoryReleased() {
+        mLock.lock();
+        try {
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Check if not yet allocated bytes fit into currently available memory.
+     * MemAvailable already excludes memory of other processes and our allocated images,
+     * those are limited by budget limit, so only fixed margin is kept free here.
+     * @param bytes
+     * @return
+     */
+    private boolean isAvailable(long bytes) {
+        final long available = mMemory.getAvailable();
+        if (available <= 0) {//unknown
+            return true;
+        }
+        return bytes <= available - AVAILABLE_MARGIN;
+    }
+
+    private double getDeviceMemory() {
+        double memory = mMemory.getTotal();
+        if (memory <= 0) {//just in case, 1GiB should be safe
+            memory = GiB;
+        }
+        return memory;
+    }
+
+    /**
+     * Source of device memory values, {@link MemInfo} is used by default
+     */
+    interface MemorySource {
+        long getTotal();
+
+        long getAvailable();
+
+        long getRefreshInterval();
+
+        void invalidate();
+    }
+
+    private static final MemorySource MEM_INFO = new MemorySource() {
+        @Override
+        public long getTotal() {
+            return MemInfo.getTotal();
+        }
+
+        @Override
+        public long getAvailable() {
+            return MemInfo.getAvailable();
+        }
+
+        @Override
+        public long getRefreshInterval() {
+            return MemInfo.getRefreshInterval();
+        }
+
+        @Override
+        public void invalidate() {
+            MemInfo.invalidate();
+        }
+    };
+
+    public static class Builder {
+        private long mLimitBytes;
+        private float mLimitRatio;
+        private long mTimeoutMs;
+        private boolean mFair = true;
+        private MemorySource mMemory = MEM_INFO;
+
+        /**
+         * Set absolute limit for all images
+         * @param bytes 0 to use {@link #setLimitRatio(float)}
+         * @return
+         */
+        public Builder setLimitBytes(long bytes) {
+            mLimitBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Set limit as ratio of device memory (MemTotal)
+         * @param ratio 0 to use default based on device memory
+         * @return
+         */
+        public Builder setLimitRatio(@FloatRange(from = 0, to = 1) float ratio) {
+            if (ratio < 0 || ratio > 1) {
+                throw new IllegalArgumentException(String.format("Invalid ratio:%s, must be in range [0, 1]", ratio));
+            }
+            mLimitRatio = ratio;
+            return this;
+        }
+
+        /**
+         * Set how long to wait for free memory
+         * @param timeoutMs 0 to fail immediately, {@link #WAIT_FOREVER} to wait without limit
+         * @return
+         */
+        public Builder setTimeout(long timeoutMs) {
+            if (timeoutMs < 0 && timeoutMs != WAIT_FOREVER) {
+                throw new IllegalArgumentException(String.format("Invalid timeout:%s", timeoutMs));
+            }
+            mTimeoutMs = timeoutMs;
+            return this;
+        }
+
+        /**
+         * Set fairness policy
+         * @param fair true to serve waiting requests in FIFO order (big request is not starved by small ones),
+         *             false to let any request which fits go first
+         * @return
+         */
+        public Builder setFair(boolean fair) {
+            mFair = fair;
+            return this;
+        }
+
+        /**
+         * Replace {@link MemInfo}, used by tests
+         * @param memory
+         * @return
+         */
+        Builder setMemorySource(@NonNull MemorySource memory) {
+            mMemory = memory;
+            return this;
+        }
+
+        @NonNull
+        public MemoryBudget build() {
+            return new MemoryBudget(this);
+        }
+    }
+}
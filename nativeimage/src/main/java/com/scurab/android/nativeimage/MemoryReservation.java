@@ -0,0 +1,62 @@
+package com.scurab.android.nativeimage;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Memory reserved in {@link MemoryBudget} by 1 operation of 1 image.
+ * Reservation is held until {@link #release()}, at that point tracker already contains real allocation.
+ * Budget passed to first {@link #reserve(MemoryBudget, long)} is kept until release, so reservation is always returned
+ * to the budget it was taken from, even if {@link NativeImage#setMemoryBudget(MemoryBudget)} is called meanwhile.
+ * Not thread safe, owner must hold its write lock.
+ */
+class MemoryReservation {
+
+    private final MemoryTracker mTracker;
+    private MemoryBudget mBudget;
+    private long mReservedBytes;
+    private long mCredit;
+
+    MemoryReservation(@NonNull MemoryTracker tracker) {
+        mTracker = tracker;
+    }
+
+    /**
+     * Set bytes which are going to be released before new allocation (e.g. current data of reloaded image),
+     * so they don't have to be reserved again
+     * @param bytes
+     */
+    void setCredit(long bytes) {
+        mCredit = Math.max(0, bytes);
+    }
+
+    /**
+     * Reserve memory for new pixel buffer, credit is used first
+     * @param budget ignored if there is already reservation not released yet
+     * @param bytes
+     * @throws OutOfMemoryError if memory can't be reserved
+     */
+    void reserve(@NonNull MemoryBudget budget, long bytes) {
+        final long credit = Math.min(bytes, mCredit);
+        mCredit -= credit;
+        if (mBudget == null) {
+            mBudget = budget;
+        }
+        mReservedBytes += mBudget.reserve(bytes - credit, mTracker);
+    }
+
+    /**
+     * Release whole reservation and unused credit back to budget used by {@link #reserve(MemoryBudget, long)}
+     */
+    void release() {
+        mCredit = 0;
+        if (mReservedBytes != 0) {
+            mBudget.release(mReservedBytes);
+            mReservedBytes = 0;
+        }
+        mBudget = null;
+    }
+
+    long getReservedBytes() {
+        return mReservedBytes;
+    }
+}
@@ -0,0 +1,95 @@
+package com.scurab.android.nativeimage;
+
+import android.support.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free tracking of native memory allocated by images.
+ * Every image is registered by its native pointer, size is updated whenever image geometry changes.
+ */
+class MemoryTracker {
+    private final ConcurrentHashMap<Long, Long> mImages = new ConcurrentHashMap<>();
+    private final AtomicLong mTotalBytes = new AtomicLong();
+    private final AtomicLong mPeakBytes = new AtomicLong();
+
+    void register(long ref) {
+        if (ref != 0) {
+            mImages.putIfAbsent(ref, 0L);
+        }
+    }
+
+    /**
+     * Set current size of particular image
+     * @param ref
+     * @param bytes
+     */
+    void update(long ref, long bytes) {
+        if (ref == 0) {
+            return;
+        }
+        final Long old = mImages.put(ref, bytes);
+        add(bytes - (old != null ? old : 0));
+    }
+
+    /**
+     * Remove image
+     * @param ref
+     * @return bytes allocated by the image
+     */
+    long unregister(long ref) {
+        if (ref == 0) {
+            return 0;
+        }
+        final Long old = mImages.remove(ref);
+        if (old != null) {
+            add(-old);
+            return old;
+        }
+        return 0;
+    }
+
+    long getTotalBytes() {
+        return mTotalBytes.get();
+    }
+
+    private void add(long diff) {
+        if (diff == 0) {
+            return;
+        }
+        final long total = mTotalBytes.addAndGet(diff);
+        long peak;
+        while (total > (peak = mPeakBytes.get())) {
+            if (mPeakBytes.compareAndSet(peak, total)) {
+                break;
+            }
+        }
+    }
+
+    @NonNull
+    NativeImage.MemoryStats snapshot() {
+        long[] sizes = new long[mImages.size()];
+        int i = 0;
+        long total = 0;
+        //map can change meanwhile, total is computed from the same values to keep snapshot consistent
+        for (Iterator<Map.Entry<Long, Long>> it = mImages.entrySet().iterator(); it.hasNext(); ) {
+            final long size = it.next().getValue();
+            if (i == sizes.length) {
+                long[] bigger = new long[sizes.length * 2 + 1];
+                System.arraycopy(sizes, 0, bigger, 0, sizes.length);
+                sizes = bigger;
+            }
+            sizes[i++] = size;
+            total += size;
+        }
+        if (i != sizes.length) {
+            long[] exact = new long[i];
+            System.arraycopy(sizes, 0, exact, 0, i);
+            sizes = exact;
+        }
+        return new NativeImage.MemoryStats(total, Math.max(total, mPeakBytes.get()), sizes);
+    }
+}
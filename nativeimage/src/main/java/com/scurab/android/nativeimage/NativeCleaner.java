@@ -0,0 +1,86 @@
+package com.scurab.android.nativeimage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Releases native memory of objects which became unreachable without explicit dispose.
+ * Uses own daemon thread and {@link ReferenceQueue}, so it's not dependent on (slow) finalizer thread.
+ */
+class NativeCleaner {
+    private static final String THREAD_NAME = "NativeImageCleaner";
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+    /**
+     * Phantom references must be strongly reachable, otherwise they are collected together with referent
+     */
+    private static final Set<Cleanable> LIVE = Collections.newSetFromMap(new ConcurrentHashMap<Cleanable, Boolean>());
+    private static Thread sThread;
+
+    /**
+     * Native resource bound to lifecycle of particular java object
+     */
+    abstract static class Cleanable extends PhantomReference<Object> {
+        private final Throwable mAllocationSite;
+
+        /**
+         * @param referent owner of native resource, must not be referenced by subclass!
+         * @param allocationSite optional stacktrace where owner has been created
+         */
+        Cleanable(@NonNull Object referent, @Nullable Throwable allocationSite) {
+            super(referent, QUEUE);
+            mAllocationSite = allocationSite;
+            LIVE.add(this);
+            ensureStarted();
+        }
+
+        /**
+         * Call when resource is released explicitly
+         * @return false if it's already released
+         */
+        final boolean unregister() {
+            clear();
+            return LIVE.remove(this);
+        }
+
+        @Nullable
+        final Throwable getAllocationSite() {
+            return mAllocationSite;
+        }
+
+        /**
+         * Owner is not reachable anymore and has not been released, called from cleaner thread
+         */
+        abstract void onLeaked();
+    }
+
+    private static synchronized void ensureStarted() {
+        if (sThread == null) {
+            sThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    //noinspection InfiniteLoopStatement
+                    while (true) {
+                        try {
+                            final Cleanable cleanable = (Cleanable) QUEUE.remove();
+                            if (LIVE.remove(cleanable)) {
+                                cleanable.onLeaked();
+                            }
+                        } catch (InterruptedException e) {
+                            //ignore, daemon thread
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                        }
+                    }
+                }
+            }, THREAD_NAME);
+            sThread.setDaemon(true);
+            sThread.start();
+        }
+    }
+}
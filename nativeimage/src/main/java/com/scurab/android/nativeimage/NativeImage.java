@@ -1,27 +1,30 @@
 package com.scurab.android.nativeimage;
 
-import android.annotation.SuppressLint;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.support.annotation.FloatRange;
 import android.support.annotation.IntDef;
 import android.support.annotation.IntRange;
 import android.support.annotation.Keep;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Pair;
+import android.util.Log;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.HashSet;
+import java.io.Closeable;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by JBruchanov on 03/04/2017.
+ * <p>
+ * Instance is thread safe, rendering methods (setPixels, setScaledPixels, asBitmap, saveImage) can run in parallel,
+ * operations changing the image (load, effects, rotation, dispose) wait for them and run exclusively.
  */
 @SuppressWarnings({"unused", "JniMissingFunction", "WeakerAccess"})
 @Keep
-public class NativeImage {
+public class NativeImage implements Closeable {
 
     @IntDef(value = {0, 90, 180, 270})
     public @interface Angle {
@@ -48,9 +51,9 @@ public class NativeImage {
 
     private static final String IMAGE_WIDTH = "imageWidth";
     private static final String IMAGE_HEIGHT = "imageHeight";
-    private static final long GiB = 1024L * 1024 * 1024;
-    private static final float MiB = 1024f * 1024f;
-    private static Double sDeviceMemory;
+
+    private static volatile MemoryBudget sMemoryBudget = new MemoryBudget.Builder().build();
+    private static volatile BitmapPool sBitmapPool;
 
     public enum Format {
         JPEG_RGB(1), PNG_RGB(2), PNG_RGBA(3);
@@ -62,11 +65,22 @@ public class NativeImage {
         }
     }
 
-    private static final HashSet<Long> POINTER_TRACKER = new HashSet<>();
-    private static long sAllocatedMemory = 0;
+    private static final MemoryTracker MEMORY_TRACKER = new MemoryTracker();
+    private static volatile boolean sLeakTracking = false;
+    private static volatile LeakListener sLeakListener;
 
     private long mNativeRef;
     private int mBytesPerPixel;
+    private volatile int mWidth;
+    private volatile int mHeight;
+    private volatile MetaData mMetaData;
+    /**
+     * Readers (setPixels, setScaledPixels, saveImage...) run concurrently,
+     * anything what can change/reallocate pixel data (load, effects, rotation, dispose) is exclusive
+     */
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final MemoryReservation mReservation = new MemoryReservation(MEMORY_TRACKER);
+    private NativeCleaner.Cleanable mCleanable;
 
     static {
         System.loadLibrary("crystax");
@@ -87,6 +101,34 @@ public class NativeImage {
         if (mNativeRef == 0) {
             throw new IllegalStateException("Unable to init native code!");
         }
+        mCleanable = new ImageCleanable(this, mNativeRef, sLeakTracking ? new Throwable("NativeImage allocated here") : null);
+    }
+
+    /**
+     * Surrogate for native image of leaked instance, native code gets the image via {@link #getNativeRef()},
+     * so it can be released by {@link #_dispose()} without the original java object
+     * @param nativeRef
+     */
+    private NativeImage(long nativeRef) {
+        mNativeRef = nativeRef;
+    }
+
+    /**
+     * Capture stacktrace of every new image, which is passed to {@link LeakListener} if image is not disposed.
+     * It's expensive, use it just for debugging.
+     * @param enabled
+     */
+    public static void setLeakTracking(boolean enabled) {
+        sLeakTracking = enabled;
+    }
+
+    /**
+     * Set listener called when image became unreachable without {@link #dispose()}.
+     * Native memory is released automatically in that case, but later than it should be.
+     * @param listener null to just log it
+     */
+    public static void setLeakListener(@Nullable LeakListener listener) {
+        sLeakListener = listener;
     }
 
     /**
@@ -97,13 +139,13 @@ public class NativeImage {
     private native void _init(int componentsPerPixel);
 
     /**
-     * Load image, format is detected based on path (extension file .png .jpg or .jpeg)
+     * Load image, format is detected based on file content (magic bytes)
      * @param path
      * @return
-     * @throws OutOfMemoryError, IllegalStateException if format can't be detected
+     * @throws OutOfMemoryError, IllegalArgumentException if format can't be detected
      */
     public int loadImage(@NonNull String path) throws OutOfMemoryError {
-        return loadImage(path, getFormatBasedExt(path));
+        return loadImageFile(path, null);
     }
 
     /**
@@ -114,16 +156,51 @@ public class NativeImage {
      * @throws OutOfMemoryError
      */
     public int loadImage(@NonNull String path, @NonNull Format format) throws OutOfMemoryError {
-        checkFreMemory(path);
-        sAllocatedMemory -= getAllocatedBytes();
-        int result = throwExceptionIfError(_loadImage(path, format.processor));
-        sAllocatedMemory += getAllocatedBytes();
-        return result;
+        return loadImageFile(path, format);
+    }
+
+    /**
+     * Header is read in java to reserve memory before native code allocates anything
+     * @param path
+     * @param format null to use detected one
+     * @return
+     */
+    private int loadImageFile(@NonNull String path, @Nullable Format format) throws OutOfMemoryError {
+        final ImageInfo info = probe(path);
+        if (format == null) {
+            format = info.format;
+        }
+        mLock.writeLock().lock();
+        try {
+            assertNotDisposed();
+            //loading releases current data first, so those bytes can be reused
+            mReservation.setCredit(getAllocatedBytes());
+            reserveMemory(info.width, info.height);
+            int result = _loadImage(path, format.processor);
+            updateSize();
+            return throwExceptionIfError(result);
+        } finally {
+            releaseReservedMemory();
+            mLock.writeLock().unlock();
+        }
     }
 
     @Keep
     private native int _loadImage(String path, int processor);
 
+    /**
+     * Read image header to get format and size, file is not decoded.
+     * Format is detected based on file content (magic bytes), not on file extension.
+     * @param path
+     * @return
+     * @throws IllegalArgumentException if format is not supported
+     * @throws IllegalStateException if file can't be read
+     */
+    @NonNull
+    public static ImageInfo probe(@NonNull String path) {
+        return ImageProbe.probe(path);
+    }
+
     /**
      * Save image
      * @param path target location
@@ -131,7 +208,13 @@ public class NativeImage {
      * @return
      */
     public int saveImage(@NonNull String path, @NonNull Format format) {
-        return throwExceptionIfError(_saveImage(path, format.processor, null));
+        mLock.readLock().lock();
+        try {
+            assertNotDisposed();
+            return throwExceptionIfError(_saveImage(path, format.processor, null));
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /**
@@ -142,19 +225,68 @@ public class NativeImage {
      * @return
      */
     public int saveImage(@NonNull String path, @NonNull Format format, @Nullable String params) {
-        return throwExceptionIfError(_saveImage(path, format.processor, params));
+        mLock.readLock().lock();
+        try {
+            assertNotDisposed();
+            return throwExceptionIfError(_saveImage(path, format.processor, params));
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     @Keep
     private native int _saveImage(String path, int processor, String params);
 
     /**
-     * Get image metadata JSON
+     * Get image metadata, returned object is immutable snapshot of current state
      * @return
      */
     @NonNull
     public MetaData getMetaData() {
-        return new MetaData(_getMetaData(), mBytesPerPixel);
+        MetaData metaData = mMetaData;
+        if (metaData == null) {
+            mLock.readLock().lock();
+            try {
+                mMetaData = metaData = new MetaData(mWidth, mHeight, mBytesPerPixel);
+            } finally {
+                mLock.readLock().unlock();
+            }
+        }
+        return metaData;
+    }
+
+    /**
+     * Get image width, no allocation, no JNI call
+     * @return
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Get image height, no allocation, no JNI call
+     * @return
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Read current size from native code, must be called after every operation which can change geometry.
+     * Metadata json is parsed just here, so getters don't call native code.
+     */
+    private void updateSize() {
+        final MetaData metaData = new MetaData(_getMetaData(), mBytesPerPixel);
+        if (metaData.width != mWidth || metaData.height != mHeight) {
+            final long allocated = getAllocatedBytes();
+            mWidth = metaData.width;
+            mHeight = metaData.height;
+            MEMORY_TRACKER.update(mNativeRef, getAllocatedBytes());
+            if (getAllocatedBytes() < allocated) {
+                sMemoryBudget.onMemoryReleased();
+            }
+        }
+        mMetaData = metaData;
     }
 
     @Keep
@@ -164,23 +296,78 @@ public class NativeImage {
      * Relase image from memory, be sure you always call this!
      */
     public void dispose() {
-        sAllocatedMemory -= getAllocatedBytes();
-        POINTER_TRACKER.remove(mNativeRef);
-        _dispose();
-        mNativeRef = 0;
+        mLock.writeLock().lock();
+        try {
+            if (mNativeRef == 0 || !mCleanable.unregister()) {
+                return;
+            }
+            MEMORY_TRACKER.unregister(mNativeRef);
+            _dispose();
+            sMemoryBudget.onMemoryReleased();
+            mNativeRef = 0;
+            mWidth = 0;
+            mHeight = 0;
+            mMetaData = null;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Must be called with lock held
+     * @throws IllegalStateException if image has been disposed
+     */
+    private void assertNotDisposed() {
+        if (mNativeRef == 0) {
+            throw new IllegalStateException("Image has been disposed");
+        }
     }
 
     @Keep
     private native void _dispose();
 
+    /**
+     * Same as {@link #dispose()}, to be able to use try-with-resources
+     */
     @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-        if (mNativeRef != 0) {
-            dispose();
+    public void close() {
+        dispose();
+    }
+
+    /**
+     * Must not keep reference to NativeImage!
+     */
+    private static class ImageCleanable extends NativeCleaner.Cleanable {
+        private final long mRef;
+
+        ImageCleanable(@NonNull NativeImage image, long ref, @Nullable Throwable allocationSite) {
+            super(image, allocationSite);
+            mRef = ref;
+        }
+
+        @Override
+        void onLeaked() {
+            final long bytes = MEMORY_TRACKER.unregister(mRef);
+            new NativeImage(mRef)._dispose();
+            sMemoryBudget.onMemoryReleased();
+            final LeakListener listener = sLeakListener;
+            if (listener != null) {
+                listener.onLeak(bytes, getAllocationSite());
+            } else {
+                Log.w("NativeImage", String.format("NativeImage leaked, %s bytes released without dispose()", bytes), getAllocationSite());
+            }
         }
     }
 
+    public interface LeakListener {
+        /**
+         * Called from cleaner thread, native memory is already released
+         * @param bytes size of leaked image
+         * @param allocationSite where image has been created, null if {@link #setLeakTracking(boolean)} is disabled
+         */
+        void onLeak(long bytes, @Nullable Throwable allocationSite);
+    }
+
     /**
      * Set pixels into outBitmap, be sure outBitmap is matching size!
      * @param outBitmap
@@ -188,8 +375,13 @@ public class NativeImage {
      */
     public int setPixels(@NonNull Bitmap outBitmap) {
         assertRGBABitmap(outBitmap);
-        final MetaData metaData = getMetaData();
-        return throwExceptionIfError(_setPixels(outBitmap, 0, 0, metaData.width, metaData.height));
+        mLock.readLock().lock();
+        try {
+            assertNotDisposed();
+            return throwExceptionIfError(_setPixels(outBitmap, 0, 0, mWidth, mHeight));
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /**
@@ -203,7 +395,13 @@ public class NativeImage {
      */
     public int setPixels(Bitmap outBitmap, int offsetX, int offsetY, int width, int height) {
         assertRGBABitmap(outBitmap);
-        return throwExceptionIfError(_setPixels(outBitmap, offsetX, offsetY, width, height));
+        mLock.readLock().lock();
+        try {
+            assertNotDisposed();
+            return throwExceptionIfError(_setPixels(outBitmap, offsetX, offsetY, width, height));
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     private void assertRGBABitmap(Bitmap bitmap) {
@@ -221,8 +419,12 @@ public class NativeImage {
      * @return
      */
     public int setScaledPixels(@NonNull Bitmap bitmap) {
-        MetaData metaData = getMetaData();
-        return setScaledPixels(bitmap, 0, 0, metaData.width, metaData.height);
+        mLock.readLock().lock();
+        try {
+            return setScaledPixels(bitmap, 0, 0, mWidth, mHeight);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /**
@@ -236,7 +438,13 @@ public class NativeImage {
      */
     public int setScaledPixels(@NonNull Bitmap bitmap, int offsetX, int offsetY, int width, int height) {
         assertRGBABitmap(bitmap);
-        return throwExceptionIfError(_setScaledPixels(bitmap, offsetX, offsetY, width, height));
+        mLock.readLock().lock();
+        try {
+            assertNotDisposed();
+            return throwExceptionIfError(_setScaledPixels(bitmap, offsetX, offsetY, width, height));
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     @Keep
@@ -261,11 +469,19 @@ public class NativeImage {
             throw new IllegalArgumentException(String.format("Invalid angle:%s, must be non-negative number divisible by 90!", angle));
         }
         if (angle != 0) {
-            if (fast) {
-                MetaData m = getMetaData();
-                checkFreeMemory(m.width, m.height, mBytesPerPixel);
+            mLock.writeLock().lock();
+            try {
+                assertNotDisposed();
+                if (fast) {
+                    reserveMemory(mWidth, mHeight);
+                }
+                final int result = _rotate(angle, fast);
+                updateSize();
+                return throwExceptionIfError(result);
+            } finally {
+                releaseReservedMemory();
+                mLock.writeLock().unlock();
             }
-            return throwExceptionIfError(_rotate(angle, fast));
         }
         return NO_ERR;
     }
@@ -277,7 +493,7 @@ public class NativeImage {
     @Keep
     void onSetNativeRef(long ref) {
         mNativeRef = ref;
-        POINTER_TRACKER.add(ref);
+        MEMORY_TRACKER.register(ref);
     }
 
     @Keep
@@ -287,17 +503,84 @@ public class NativeImage {
     //endregion
 
     /**
-     * Apply effect use {@link EffectBuilder}
+     * Apply effect use {@link EffectBuilder}, json can contain multiple effects, those are applied one by one in given order.
+     * Chain is not atomic, if any effect fails, effects before it stay applied on the image.
      * @param json
      */
     public int applyEffect(String json) {
-        long allocated = getAllocatedBytes();
-        final int result = throwExceptionIfError(_applyEffect(json));
-        long newAllocated = getAllocatedBytes();
-        if (allocated != newAllocated) {
-            sAllocatedMemory += (-allocated + newAllocated);
+        final String[] effects = getEffects(json);
+        return applyEffects(effects != null ? effects : new String[]{json});
+    }
+
+    /**
+     * Split chain from {@link EffectBuilder#build()} into single effect jsons, native code handles only 1 effect per call
+     * @param json
+     * @return effects of chain, null if it's single effect
+     */
+    @Nullable
+    private static String[] getEffects(String json) {
+        if (json == null || !json.contains(EffectBuilder.EFFECTS)) {
+            return null;
+        }
+        final JSONArray array;
+        try {
+            array = new JSONObject(json).optJSONArray(EffectBuilder.EFFECTS);
+        } catch (JSONException e) {
+            //invalid json is reported by native code
+            return null;
+        }
+        if (array == null) {
+            return null;
+        }
+        final String[] effects = new String[array.length()];
+        for (int i = 0; i < effects.length; i++) {
+            //anything else than object is reported by native code as invalid json
+            effects[i] = String.valueOf(array.opt(i));
+        }
+        return effects;
+    }
+
+    private int applyEffects(@NonNull String[] effects) {
+        mLock.writeLock().lock();
+        try {
+            assertNotDisposed();
+            for (String effect : effects) {
+                final int result;
+                try {
+                    reserveEffectMemory(effect);
+                    result = _applyEffect(effect);
+                    updateSize();
+                } finally {
+                    //old data are released after each effect, so reservation can't be held for whole chain
+                    releaseReservedMemory();
+                }
+                throwExceptionIfError(result);
+            }
+            return NO_ERR;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reserve memory for effects allocating new pixel buffer (crop, naiveResize), others work in place
+     * @param json single effect
+     */
+    private void reserveEffectMemory(String json) {
+        if (json == null || !(json.contains(EffectBuilder.CROP) || json.contains(EffectBuilder.NAIVE_RESIZE))) {
+            return;
+        }
+        final JSONObject effect;
+        try {
+            effect = new JSONObject(json);
+        } catch (JSONException e) {
+            //invalid json is reported by native code
+            return;
+        }
+        final String name = effect.optString(EffectBuilder.EFFECT);
+        if (EffectBuilder.CROP.equals(name) || EffectBuilder.NAIVE_RESIZE.equals(name)) {
+            reserveMemory(effect.optInt(EffectBuilder.WIDTH), effect.optInt(EffectBuilder.HEIGHT));
         }
-        return result;
     }
 
     @Keep
@@ -319,20 +602,28 @@ public class NativeImage {
     public Bitmap asBitmap(@Nullable Bitmap bitmap) {
         boolean passedBitmap = bitmap != null;
         boolean createBitmap = bitmap == null;
-        final MetaData metaData = getMetaData();
-        if (createBitmap) {
-            bitmap = Bitmap.createBitmap(metaData.width, metaData.height, Bitmap.Config.ARGB_8888);
-        } else {
-            if (metaData.width != bitmap.getWidth() || metaData.height != bitmap.getHeight()) {
-                throw new IllegalArgumentException(String.format("Invalid Bitmap, has %sx%s, native image has %sx%s", bitmap.getWidth(), bitmap.getHeight(), metaData.width, metaData.height));
+        mLock.readLock().lock();
+        try {
+            if (createBitmap) {
+                bitmap = obtainBitmap(mWidth, mHeight);
+            } else {
+                if (mWidth != bitmap.getWidth() || mHeight != bitmap.getHeight()) {
+                    throw new IllegalArgumentException(String.format("Invalid Bitmap, has %sx%s, native image has %sx%s", bitmap.getWidth(), bitmap.getHeight(), mWidth, mHeight));
+                }
             }
+            try {
+                setPixels(bitmap);
+            } catch (Throwable t) {
+                //setPixels throws instead of returning error code, obtained bitmap would be lost for the pool
+                if (!passedBitmap) {
+                    releaseBitmap(bitmap);
+                }
+                throw t;
+            }
+            return bitmap;
+        } finally {
+            mLock.readLock().unlock();
         }
-        int result = setPixels(bitmap);
-        if (result != NO_ERR && !passedBitmap) {
-            bitmap.recycle();
-            bitmap = null;
-        }
-        return bitmap;
     }
 
     /**
@@ -347,14 +638,13 @@ public class NativeImage {
         if (width <= 0 && height <= 0) {
             throw new IllegalArgumentException(String.format("Invalid size provided width:%s height:%s, at least 1 value must be positive", width, height));
         }
-        final MetaData metaData = getMetaData();
         if (width == 0) {
-            width = (int) (height * (metaData.width / (float) metaData.height));
+            width = (int) (height * (mWidth / (float) mHeight));
         }
         if (height == 0) {
-            height = (int) (width * (metaData.height / (float) metaData.width));
+            height = (int) (width * (mHeight / (float) mWidth));
         }
-        return asScaledBitmap(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+        return asObtainedScaledBitmap(obtainBitmap(width, height));
     }
 
     /**
@@ -362,8 +652,7 @@ public class NativeImage {
      * @return
      */
     public Bitmap asScaledBitmap(@FloatRange(from = 0, to = 1, fromInclusive = false) float scale) {
-        final MetaData metaData = getMetaData();
-        return asScaledBitmap(Bitmap.createBitmap(Math.round(scale * metaData.width), Math.round(scale * metaData.height), Bitmap.Config.ARGB_8888));
+        return asObtainedScaledBitmap(obtainBitmap(Math.round(scale * mWidth), Math.round(scale * mHeight)));
     }
 
     /**
@@ -378,38 +667,69 @@ public class NativeImage {
     }
 
     /**
-     * Get allocated bytes in native heap
-     * @return
+     * Same as {@link #asScaledBitmap(Bitmap)}, bitmap is returned into pool if filling fails
      */
-    public long getAllocatedBytes() {
-        return getMetaData().getAllocatedBytes();
+    private Bitmap asObtainedScaledBitmap(@NonNull Bitmap bitmap) {
+        try {
+            return asScaledBitmap(bitmap);
+        } catch (Throwable t) {
+            releaseBitmap(bitmap);
+            throw t;
+        }
     }
 
     /**
-     * Try to get Format based on file extension
-     * @param path
-     * @return
-     * @throws IllegalArgumentException if can't be detected
+     * Set pool used by {@link #asBitmap()} and asScaledBitmap methods to reuse bitmaps instead of allocating new ones.
+     * Return bitmaps which are not needed anymore via {@link #releaseBitmap(Bitmap)}.
+     * @param pool null to always create new bitmap
+     */
+    public static void setBitmapPool(@Nullable BitmapPool pool) {
+        sBitmapPool = pool;
+    }
+
+    @Nullable
+    public static BitmapPool getBitmapPool() {
+        return sBitmapPool;
+    }
+
+    /**
+     * Return bitmap for reuse, if there is no {@link BitmapPool} bitmap is recycled
+     * @param bitmap must not be used by caller anymore
      */
-    private Format getFormatBasedExt(@NonNull String path) {
-        path = path.toLowerCase();
-        if (path.endsWith(".png")) {
-            return Format.PNG_RGBA;
-        } else if (path.endsWith(".jpg") || path.endsWith(".jpeg")) {
-            return Format.JPEG_RGB;
+    public static void releaseBitmap(@NonNull Bitmap bitmap) {
+        final BitmapPool pool = sBitmapPool;
+        if (pool != null) {
+            pool.put(bitmap);
+        } else {
+            bitmap.recycle();
         }
-        throw new IllegalArgumentException(String.format("Unable to detect format based on file:'%s'", path));
     }
 
-    private void checkFreMemory(@NonNull String file) {
-        BitmapFactory.Options opts = new BitmapFactory.Options();
-        try {
-            opts.inJustDecodeBounds = true;
-            BitmapFactory.decodeFile(file, opts);
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
+    /**
+     * Get ARGB_8888 bitmap from {@link BitmapPool} or create new one
+     * @param width
+     * @param height
+     * @return
+     */
+    @NonNull
+    static Bitmap obtainBitmap(int width, int height) {
+        final BitmapPool pool = sBitmapPool;
+        Bitmap bitmap = null;
+        if (pool != null) {
+            bitmap = pool.get(width, height, Bitmap.Config.ARGB_8888);
+        }
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         }
-        checkFreeMemory(opts.outWidth, opts.outHeight, mBytesPerPixel);
+        return bitmap;
+    }
+
+    /**
+     * Get allocated bytes in native heap
+     * @return
+     */
+    public long getAllocatedBytes() {
+        return (long) mWidth * mHeight * mBytesPerPixel;
     }
 
     private int throwExceptionIfError(int resultCode) {
@@ -441,28 +761,72 @@ public class NativeImage {
         }
     }
 
-    @SuppressLint("DefaultLocale")
-    private static void checkFreeMemory(int w, int h, int bytesPerPixel) {
-        long neededMemory = (long) w * h * bytesPerPixel;
-        if (sDeviceMemory == null) {
-            final Pair<Long, Long> deviceMemory = ShellHelper.getDeviceMemory();
-            sDeviceMemory = Double.valueOf(deviceMemory.first);
-            if (sDeviceMemory == 0) {//just in case, 1GiB should be safe
-                sDeviceMemory = (double) GiB;
-            }
-        }
-        double willBeUsedMemoryCoef = (neededMemory + sAllocatedMemory) / sDeviceMemory;
-        double ratio;
-        if (sDeviceMemory < GiB) {
-            ratio = 0.5;
-        } else if (sDeviceMemory < 2 * GiB) {
-            ratio = 0.7;
-        } else {
-            ratio = 0.85;
+    /**
+     * Get snapshot of native memory allocated by all images
+     * @return
+     */
+    @NonNull
+    public static MemoryStats getMemoryStats() {
+        return MEMORY_TRACKER.snapshot();
+    }
+
+    /**
+     * Set budget used for every native allocation, set it before any image is loaded
+     * @param budget
+     */
+    public static void setMemoryBudget(@NonNull MemoryBudget budget) {
+        //noinspection ConstantConditions
+        if (budget == null) {
+            throw new IllegalArgumentException("Budget must not be null");
         }
+        sMemoryBudget = budget;
+    }
+
+    @NonNull
+    public static MemoryBudget getMemoryBudget() {
+        return sMemoryBudget;
+    }
+
+    /**
+     * Reserve memory for new pixel buffer, reservation is held until {@link #releaseReservedMemory()},
+     * at that point {@link #MEMORY_TRACKER} already contains real allocation.
+     * @param width
+     * @param height
+     * @throws OutOfMemoryError if memory can't be reserved
+     */
+    private void reserveMemory(int width, int height) {
+        mReservation.reserve(sMemoryBudget, (long) width * height * mBytesPerPixel);
+    }
+
+    private void releaseReservedMemory() {
+        mReservation.release();
+    }
+
+    /**
+     * Image header info, see {@link #probe(String)}
+     */
+    public static class ImageInfo {
+        /**
+         * Detected format, for PNG it's {@link Format#PNG_RGBA} if image has alpha channel
+         */
+        public final Format format;
+        public final int width;
+        public final int height;
+        /**
+         * Number of color components (1 grayscale ... 4 RGBA)
+         */
+        public final int channels;
+        /**
+         * Bits per component
+         */
+        public final int bitDepth;
 
-        if (willBeUsedMemoryCoef > ratio) {
-            throw new OutOfMemoryError(String.format("Allocating needs %.2f MB, device has:%.2f MB, getting close to total device memory means that OS will most likely kill our process!", neededMemory / MiB, sDeviceMemory / MiB));
+        ImageInfo(@NonNull Format format, int width, int height, int channels, int bitDepth) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+            this.bitDepth = bitDepth;
         }
     }
 
@@ -471,6 +835,12 @@ public class NativeImage {
         public final int height;
         public final int bytesPerPixel;
 
+        MetaData(int width, int height, int bytesPerPixel) {
+            this.width = width;
+            this.height = height;
+            this.bytesPerPixel = bytesPerPixel;
+        }
+
         MetaData(String json, int bytesPerPixel) {
             try {
                 JSONObject obj = new JSONObject(json);
@@ -487,6 +857,41 @@ public class NativeImage {
         }
     }
 
+    /**
+     * Snapshot of native memory used by all {@link NativeImage} instances
+     */
+    public static class MemoryStats {
+        /**
+         * Currently allocated bytes by all images
+         */
+        public final long totalBytes;
+        /**
+         * Max value of {@link #totalBytes} since start
+         */
+        public final long peakBytes;
+        /**
+         * Number of not disposed images
+         */
+        public final int imageCount;
+        private final long[] mImageSizes;
+
+        MemoryStats(long totalBytes, long peakBytes, @NonNull long[] imageSizes) {
+            this.totalBytes = totalBytes;
+            this.peakBytes = peakBytes;
+            this.imageCount = imageSizes.length;
+            mImageSizes = imageSizes;
+        }
+
+        /**
+         * Get allocated bytes of each not disposed image
+         * @return copy of values
+         */
+        @NonNull
+        public long[] getImageSizes() {
+            return mImageSizes.clone();
+        }
+    }
+
     public static class SaveParamsBuilder {
         private JSONObject mParams = new JSONObject();
 
@@ -500,54 +905,70 @@ public class NativeImage {
         }
     }
 
+    /**
+     * Effects are applied in the same order as they are added, each of them is 1 pass over the image.
+     * If an effect of chain fails, previous effects are already applied and image is not restored.
+     */
     public static class EffectBuilder {
         private static final String EFFECT = "effect";
-        private JSONObject mParams = new JSONObject();
+        private static final String EFFECTS = "effects";
+        private static final String CROP = "crop";
+        private static final String NAIVE_RESIZE = "naiveResize";
+        private static final String WIDTH = "width";
+        private static final String HEIGHT = "height";
+        private final JSONArray mEffects = new JSONArray();
+        private JSONObject mParams;
+
+        private void addEffect(@NonNull String effect) {
+            mParams = new JSONObject();
+            add(mParams, EFFECT, effect);
+            mEffects.put(mParams);
+        }
 
         public EffectBuilder grayScale() {
-            add(mParams, EFFECT, "grayScale");
+            addEffect("grayScale");
             return this;
         }
 
         public EffectBuilder crop(int offsetX, int offsetY, int width, int height) {
-            add(mParams, EFFECT, "crop");
+            addEffect(CROP);
             add(mParams, "offsetX", offsetX);
             add(mParams, "offsetY", offsetY);
-            add(mParams, "width", width);
-            add(mParams, "height", height);
+            add(mParams, WIDTH, width);
+            add(mParams, HEIGHT, height);
             return this;
         }
 
         public EffectBuilder brightness(@IntRange(from = -255, to = 255) int diff) {
-            add(mParams, EFFECT, "brightness");
+            addEffect("brightness");
             add(mParams, "brightness", diff);
             return this;
         }
 
         public EffectBuilder contrast(@IntRange(from = -255, to = 255) int diff) {
-            add(mParams, EFFECT, "contrast");
+            addEffect("contrast");
             add(mParams, "contrast", diff);
             return this;
         }
 
         public EffectBuilder gamma(@FloatRange(from = 0, fromInclusive = false) float diff) {
-            add(mParams, EFFECT, "gamma");
+            addEffect("gamma");
             add(mParams, "gamma", diff);
             return this;
         }
 
         public EffectBuilder inverse() {
-            add(mParams, EFFECT, "inverse");
+            addEffect("inverse");
             return this;
         }
 
         public EffectBuilder flipVertical() {
-            add(mParams, EFFECT, "flipv");
+            addEffect("flipv");
             return this;
         }
 
         public EffectBuilder flipHorizontal() {
-            add(mParams, EFFECT, "fliph");
+            addEffect("fliph");
             return this;
         }
 
@@ -556,14 +977,27 @@ public class NativeImage {
         }
 
         public EffectBuilder naiveDownscale(int width, int height) {
-            add(mParams, EFFECT, "naiveResize");
-            add(mParams, "width", width);
-            add(mParams, "height", height);
+            addEffect(NAIVE_RESIZE);
+            add(mParams, WIDTH, width);
+            add(mParams, HEIGHT, height);
             return this;
         }
 
+        /**
+         * @return
+         * @throws IllegalStateException if there is no effect added
+         */
         public String build() {
-            return mParams.toString();
+            if (mEffects.length() == 0) {
+                throw new IllegalStateException("No effect defined");
+            }
+            if (mEffects.length() == 1) {
+                //single effect keeps original format
+                return mParams.toString();
+            }
+            JSONObject obj = new JSONObject();
+            add(obj, EFFECTS, mEffects);
+            return obj.toString();
         }
     }
 
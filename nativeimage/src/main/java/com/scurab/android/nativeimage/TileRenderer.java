@@ -0,0 +1,246 @@
+package com.scurab.android.nativeimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders {@link NativeImage} in fixed size tiles, tiles are kept in LRU cache bounded by bytes,
+ * so panning renders only tiles which were not visible before.
+ * Evicted tile bitmaps are returned into {@link BitmapPool} and reused for new tiles, so there is no java heap allocation in steady state.
+ * <p>
+ * Tiles are addressed by zoom level, level 0 is original resolution, level n is image scaled by 1/2^n
+ * (negative levels are upscaled), tile (tx, ty) covers [tx * tileSize, ty * tileSize] in level coordinates.
+ * <p>
+ * Not thread safe, use it from 1 thread (e.g. main thread).
+ */
+public class TileRenderer {
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final long DEFAULT_CACHE_SIZE = 32L * 1024 * 1024;
+    /**
+     * Max number of evicted bitmaps kept for reuse by own pool
+     */
+    private static final int MAX_POOL_SIZE = 16;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final NativeImage mImage;
+    private final int mTileSize;
+    private final long mMaxBytes;
+    private final LinkedHashMap<Long, Tile> mCache = new LinkedHashMap<>(16, 0.75f, true);
+    private final BitmapPool mPool;
+    private final boolean mOwnPool;
+    private long mCacheBytes;
+    /**
+     * Incremented by every {@link #getTiles(int, Rect, List)}, visible tiles are not evicted
+     */
+    private int mFrame;
+
+    public TileRenderer(@NonNull NativeImage image) {
+        this(image, DEFAULT_TILE_SIZE, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param image
+     * @param tileSize size of tile in pixels
+     * @param maxBytes max size of cached tiles, currently visible tiles are kept even if they don't fit
+     */
+    public TileRenderer(@NonNull NativeImage image, @IntRange(from = 1) int tileSize, long maxBytes) {
+        this(image, tileSize, maxBytes, null);
+    }
+
+    /**
+     * @param image
+     * @param tileSize size of tile in pixels
+     * @param maxBytes max size of cached tiles, currently visible tiles are kept even if they don't fit
+     * @param pool pool for tile bitmaps, null to use {@link NativeImage#getBitmapPool()} or own pool if it's not set
+     */
+    public TileRenderer(@NonNull NativeImage image, @IntRange(from = 1) int tileSize, long maxBytes, @Nullable BitmapPool pool) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid tileSize:%s", tileSize));
+        }
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException(String.format("Invalid maxBytes:%s", maxBytes));
+        }
+        mImage = image;
+        mTileSize = tileSize;
+        mMaxBytes = maxBytes;
+        if (pool == null) {
+            pool = NativeImage.getBitmapPool();
+        }
+        mOwnPool = pool == null;
+        mPool = mOwnPool ? new LruBitmapPool((long) MAX_POOL_SIZE * tileSize * tileSize * BYTES_PER_PIXEL, MAX_POOL_SIZE) : pool;
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    /**
+     * Get size of image in particular zoom level
+     * @param zoom
+     * @return
+     */
+    public int getLevelWidth(int zoom) {
+        return (int) Math.ceil(mImage.getWidth() / getScale(zoom));
+    }
+
+    public int getLevelHeight(int zoom) {
+        return (int) Math.ceil(mImage.getHeight() / getScale(zoom));
+    }
+
+    /**
+     * Get all tiles intersecting viewport, missing tiles are rendered.
+     * Returned tiles are valid until next call of this method or {@link #invalidate()}.
+     * @param zoom zoom level, see {@link TileRenderer}
+     * @param viewport visible area in level coordinates
+     * @param out list where the tiles are added, it's not cleared
+     */
+    public void getTiles(int zoom, @NonNull Rect viewport, @NonNull List<Tile> out) {
+        mFrame++;
+        final int levelWidth = getLevelWidth(zoom);
+        final int levelHeight = getLevelHeight(zoom);
+        if (viewport.right <= 0 || viewport.bottom <= 0 || viewport.left >= levelWidth || viewport.top >= levelHeight) {
+            return;
+        }
+        final int left = Math.max(0, viewport.left) / mTileSize;
+        final int top = Math.max(0, viewport.top) / mTileSize;
+        final int right = (Math.min(levelWidth, viewport.right) - 1) / mTileSize;
+        final int bottom = (Math.min(levelHeight, viewport.bottom) - 1) / mTileSize;
+        for (int ty = top; ty <= bottom; ty++) {
+            for (int tx = left; tx <= right; tx++) {
+                final long key = key(zoom, tx, ty);
+                Tile tile = mCache.get(key);
+                if (tile == null) {
+                    tile = render(zoom, tx, ty, levelWidth, levelHeight);
+                    mCache.put(key, tile);
+                    mCacheBytes += tile.getByteCount();
+                }
+                tile.mFrame = mFrame;
+                out.add(tile);
+            }
+        }
+        trimCache();
+    }
+
+    /**
+     * Drop all cached tiles, call it when the image has been changed
+     */
+    public void invalidate() {
+        for (Tile tile : mCache.values()) {
+            mPool.put(tile.bitmap);
+        }
+        mCache.clear();
+        mCacheBytes = 0;
+    }
+
+    /**
+     * Release all bitmaps, renderer can be still used after that.
+     * Bitmaps are returned into shared pool, own pool is cleared.
+     */
+    public void release() {
+        invalidate();
+        if (mOwnPool) {
+            mPool.clear();
+        }
+    }
+
+    /**
+     * Get size of cached tiles
+     * @return
+     */
+    public long getCacheBytes() {
+        return mCacheBytes;
+    }
+
+    @NonNull
+    private Tile render(int zoom, int tx, int ty, int levelWidth, int levelHeight) {
+        final int left = tx * mTileSize;
+        final int top = ty * mTileSize;
+        //edge tiles have exact size, so there is nothing to clip while drawing
+        final int width = Math.min(mTileSize, levelWidth - left);
+        final int height = Math.min(mTileSize, levelHeight - top);
+        final Bitmap bitmap = obtain(width, height);
+        if (zoom == 0) {
+            mImage.setPixels(bitmap, left, top, width, height);
+        } else {
+            final float scale = getScale(zoom);
+            final int srcLeft = Math.round(left * scale);
+            final int srcTop = Math.round(top * scale);
+            final int srcRight = Math.max(srcLeft + 1, Math.min(mImage.getWidth(), Math.round((left + width) * scale)));
+            final int srcBottom = Math.max(srcTop + 1, Math.min(mImage.getHeight(), Math.round((top + height) * scale)));
+            mImage.setScaledPixels(bitmap, srcLeft, srcTop, srcRight - srcLeft, srcBottom - srcTop);
+        }
+        return new Tile(zoom, tx, ty, left, top, bitmap);
+    }
+
+    /**
+     * Evict least recently used tiles which are not visible
+     */
+    private void trimCache() {
+        final Iterator<Map.Entry<Long, Tile>> iterator = mCache.entrySet().iterator();
+        while (mCacheBytes > mMaxBytes && iterator.hasNext()) {
+            final Tile tile = iterator.next().getValue();
+            if (tile.mFrame == mFrame) {
+                //rest are visible too, access order puts them at the end
+                break;
+            }
+            iterator.remove();
+            mCacheBytes -= tile.getByteCount();
+            mPool.put(tile.bitmap);
+        }
+    }
+
+    @NonNull
+    private Bitmap obtain(int width, int height) {
+        final Bitmap bitmap = mPool.get(width, height, Bitmap.Config.ARGB_8888);
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Get number of source pixels per 1 pixel of zoom level
+     */
+    private static float getScale(int zoom) {
+        return Math.scalb(1f, zoom);
+    }
+
+    private static long key(int zoom, int tx, int ty) {
+        return ((long) (zoom & 0xFF) << 56) | ((long) tx << 28) | ty;
+    }
+
+    public static class Tile {
+        public final int zoom;
+        public final int tx;
+        public final int ty;
+        /**
+         * Position of tile in level coordinates
+         */
+        public final int left;
+        public final int top;
+        /**
+         * Rendered tile, owned by renderer, don't recycle it!
+         */
+        public final Bitmap bitmap;
+        private int mFrame;
+
+        Tile(int zoom, int tx, int ty, int left, int top, @NonNull Bitmap bitmap) {
+            this.zoom = zoom;
+            this.tx = tx;
+            this.ty = ty;
+            this.left = left;
+            this.top = top;
+            this.bitmap = bitmap;
+        }
+
+        long getByteCount() {
+            return (long) bitmap.getWidth() * bitmap.getHeight() * BYTES_PER_PIXEL;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.scurab.android.nativeimage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MemoryBudgetTest {
+
+    private static final long LIMIT = 1000;
+    /**
+     * Budget polls no sooner than this, so waiting threads can be woken up only by signal
+     */
+    private static final long NO_POLL = TimeUnit.MINUTES.toMillis(10);
+    private static final long JOIN_TIMEOUT = 5000;
+
+    private FakeMemory mMemory;
+    private MemoryTracker mTracker;
+
+    @Before
+    public void setUp() {
+        mMemory = new FakeMemory();
+        mTracker = new MemoryTracker();
+    }
+
+    @Test
+    public void testReserveAndRelease() {
+        final MemoryBudget budget = createBuilder().build();
+
+        assertEquals(600, budget.reserve(600, mTracker));
+        assertEquals(400, budget.reserve(400, mTracker));
+        assertEquals(1000, budget.getReservedBytes());
+
+        budget.release(1000);
+        assertEquals(0, budget.getReservedBytes());
+        assertEquals(1, mMemory.invalidated);
+    }
+
+    @Test
+    public void testReserveNothing() {
+        final MemoryBudget budget = createBuilder().build();
+
+        assertEquals(0, budget.reserve(0, mTracker));
+        budget.release(0);
+
+        assertEquals(0, budget.getReservedBytes());
+        assertEquals(0, mMemory.invalidated);
+    }
+
+    @Test(expected = OutOfMemoryError.class)
+    public void testReserveOverLimitFailsImmediately() {
+        createBuilder().setTimeout(MemoryBudget.WAIT_FOREVER).build().reserve(LIMIT + 1, mTracker);
+    }
+
+    @Test
+    public void testTrackedMemoryIsCounted() {
+        final MemoryBudget budget = createBuilder().build();
+        mTracker.update(1, 800);
+
+        assertOutOfMemory(budget, 201);
+
+        assertEquals(200, budget.reserve(200, mTracker));
+    }
+
+    @Test
+    public void testMemAvailableIsCounted() {
+        //memory used by other processes is already excluded from MemAvailable, so only margin is kept free
+        mMemory.total = 2000;
+        mMemory.available = MemoryBudget.AVAILABLE_MARGIN + 300;
+        final MemoryBudget budget = createBuilder().build();
+
+        assertOutOfMemory(budget, 301);
+
+        assertEquals(300, budget.reserve(300, mTracker));
+    }
+
+    @Test
+    public void testMemoryOfOtherProcessesIsNotCountedTwice() {
+        //other processes take half of device memory, whole limit is still available
+        mMemory.available = MemoryBudget.AVAILABLE_MARGIN + LIMIT;
+        mMemory.total = 2 * mMemory.available;
+        final MemoryBudget budget = createBuilder().build();
+
+        assertEquals(LIMIT, budget.reserve(LIMIT, mTracker));
+    }
+
+    @Test
+    public void testTimeoutExpires() {
+        final MemoryBudget budget = createBuilder().setTimeout(100).build();
+        budget.reserve(800, mTracker);
+
+        final long start = System.nanoTime();
+        assertOutOfMemory(budget, 300);
+        final long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Waited just " + waited + "ms", waited >= 100);
+        assertEquals(800, budget.getReservedBytes());
+    }
+
+    @Test
+    public void testTimeoutReservesWhenReleasedInTime() throws InterruptedException {
+        final MemoryBudget budget = createBuilder().setTimeout(NO_POLL).build();
+        budget.reserve(800, mTracker);
+        final Reserve waiting = start(budget, 300);
+
+        budget.release(800);
+
+        waiting.await();
+        assertEquals(300, budget.getReservedBytes());
+    }
+
+    @Test
+    public void testWaitForeverWakesUpOnRelease() throws InterruptedException {
+        final MemoryBudget budget = createBuilder().setTimeout(MemoryBudget.WAIT_FOREVER).build();
+        budget.reserve(800, mTracker);
+        final Reserve waiting = start(budget, 300);
+        assertFalse(waiting.isDone());
+
+        budget.release(800);
+
+        waiting.await();
+        assertEquals(300, budget.getReservedBytes());
+    }
+
+    @Test
+    public void testWaitForeverWakesUpOnMemoryReleased() throws InterruptedException {
+        final MemoryBudget budget = createBuilder().setTimeout(MemoryBudget.WAIT_FOREVER).build();
+        mTracker.update(1, 800);
+        final Reserve waiting = start(budget, 300);
+
+        //disposed image
+        mTracker.unregister(1);
+        budget.onMemoryReleased();
+
+        waiting.await();
+        assertEquals(300, budget.getReservedBytes());
+    }
+
+    @Test
+    public void testFairServesInOrder() throws InterruptedException {
+        final MemoryBudget budget = createBuilder().setTimeout(MemoryBudget.WAIT_FOREVER).setFair(true).build();
+        budget.reserve(800, mTracker);
+        final Reserve big = start(budget, 500);
+        //fits, but must not overtake waiting request
+        final Reserve small = start(budget, 100);
+        assertFalse(small.isDone());
+        assertEquals(800, budget.getReservedBytes());
+
+        budget.release(800);
+
+        big.await();
+        small.await();
+        assertEquals(600, budget.getReservedBytes());
+    }
+
+    @Test
+    public void testBargingLetsFittingRequestGo() throws InterruptedException {
+        final MemoryBudget budget = createBuilder().setTimeout(MemoryBudget.WAIT_FOREVER).setFair(false).build();
+        budget.reserve(800, mTracker);
+        final Reserve big = start(budget, 500);
+        final Reserve small = start(budget, 100);
+
+        small.await();
+        assertFalse(big.isDone());
+        assertEquals(900, budget.getReservedBytes());
+
+        budget.release(900);
+
+        big.await();
+        assertEquals(500, budget.getReservedBytes());
+    }
+
+    private MemoryBudget.Builder createBuilder() {
+        return new MemoryBudget.Builder()
+                .setLimitBytes(LIMIT)
+                .setMemorySource(mMemory);
+    }
+
+    private void assertOutOfMemory(MemoryBudget budget, long bytes) {
+        try {
+            budget.reserve(bytes, mTracker);
+            fail("OutOfMemoryError expected");
+        } catch (OutOfMemoryError e) {
+            //expected
+        }
+    }
+
+    /**
+     * Start reservation in new thread and wait until it's blocked in budget
+     */
+    private Reserve start(MemoryBudget budget, long bytes) throws InterruptedException {
+        final Reserve reserve = new Reserve(budget, bytes);
+        reserve.start();
+        final long end = System.currentTimeMillis() + JOIN_TIMEOUT;
+        while (reserve.isAlive() && reserve.getState() != Thread.State.TIMED_WAITING) {
+            if (System.currentTimeMillis() > end) {
+                fail("Reservation is not waiting");
+            }
+            Thread.sleep(1);
+        }
+        return reserve;
+    }
+
+    private class Reserve extends Thread {
+        private final MemoryBudget mBudget;
+        private final long mBytes;
+        private volatile Throwable mError;
+
+        Reserve(MemoryBudget budget, long bytes) {
+            mBudget = budget;
+            mBytes = bytes;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mBudget.reserve(mBytes, mTracker);
+            } catch (Throwable t) {
+                mError = t;
+            }
+        }
+
+        boolean isDone() {
+            return !isAlive();
+        }
+
+        void await() throws InterruptedException {
+            join(JOIN_TIMEOUT);
+            assertTrue("Reservation is still waiting", isDone());
+            if (mError != null) {
+                throw new AssertionError(mError);
+            }
+        }
+    }
+
+    private static class FakeMemory implements MemoryBudget.MemorySource {
+        volatile long total;
+        volatile long available;
+        volatile int invalidated;
+
+        @Override
+        public long getTotal() {
+            return total;
+        }
+
+        @Override
+        public long getAvailable() {
+            return available;
+        }
+
+        @Override
+        public long getRefreshInterval() {
+            return NO_POLL;
+        }
+
+        @Override
+        public void invalidate() {
+            invalidated++;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.scurab.android.nativeimage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MemoryReservationTest {
+
+    private static final long LIMIT = 1000;
+
+    private MemoryTracker mTracker;
+    private MemoryBudget mBudget;
+    private MemoryReservation mReservation;
+
+    @Before
+    public void setUp() {
+        mTracker = new MemoryTracker();
+        mBudget = createBudget();
+        mReservation = new MemoryReservation(mTracker);
+    }
+
+    private static MemoryBudget createBudget() {
+        return new MemoryBudget.Builder()
+                .setLimitBytes(LIMIT)
+                .setMemorySource(new MemoryBudget.MemorySource() {
+                    @Override
+                    public long getTotal() {
+                        return 0;
+                    }
+
+                    @Override
+                    public long getAvailable() {
+                        return 0;
+                    }
+
+                    @Override
+                    public long getRefreshInterval() {
+                        return 0;
+                    }
+
+                    @Override
+                    public void invalidate() {
+                    }
+                })
+                .build();
+    }
+
+    @Test
+    public void testReserveAndRelease() {
+        mReservation.reserve(mBudget, 300);
+        mReservation.reserve(mBudget, 200);
+
+        assertEquals(500, mReservation.getReservedBytes());
+        assertEquals(500, mBudget.getReservedBytes());
+
+        mReservation.release();
+        assertEquals(0, mReservation.getReservedBytes());
+        assertEquals(0, mBudget.getReservedBytes());
+    }
+
+    @Test
+    public void testReleaseReturnsToBudgetUsedForReserve() {
+        mReservation.reserve(mBudget, 300);
+        //budget replaced while operation is running
+        final MemoryBudget other = createBudget();
+        mReservation.reserve(other, 200);
+
+        assertEquals(500, mBudget.getReservedBytes());
+        assertEquals(0, other.getReservedBytes());
+
+        mReservation.release();
+        assertEquals(0, mBudget.getReservedBytes());
+        assertEquals(0, other.getReservedBytes());
+
+        mReservation.reserve(other, 100);
+        assertEquals(100, other.getReservedBytes());
+    }
+
+    @Test
+    public void testReloadOfSameSizeNeedsNoReservation() {
+        //image already takes most of budget, reloading it must not fail
+        mTracker.update(1, 800);
+        mReservation.setCredit(800);
+
+        mReservation.reserve(mBudget, 800);
+
+        assertEquals(0, mReservation.getReservedBytes());
+        assertEquals(0, mBudget.getReservedBytes());
+    }
+
+    @Test
+    public void testReloadOfBiggerImageReservesDifference() {
+        mTracker.update(1, 600);
+        mReservation.setCredit(600);
+
+        mReservation.reserve(mBudget, 900);
+
+        assertEquals(300, mReservation.getReservedBytes());
+        assertEquals(300, mBudget.getReservedBytes());
+    }
+
+    @Test
+    public void testCreditIsUsedJustOnce() {
+        mReservation.setCredit(500);
+
+        mReservation.reserve(mBudget, 300);
+        mReservation.reserve(mBudget, 300);
+
+        assertEquals(100, mReservation.getReservedBytes());
+    }
+
+    @Test
+    public void testReleaseDropsUnusedCredit() {
+        mReservation.setCredit(500);
+        mReservation.release();
+
+        mReservation.reserve(mBudget, 300);
+
+        assertEquals(300, mReservation.getReservedBytes());
+    }
+
+    @Test(expected = OutOfMemoryError.class)
+    public void testCreditDoesNotCoverOtherImages() {
+        mTracker.update(1, 800);
+        mReservation.setCredit(100);
+
+        mReservation.reserve(mBudget, 400);
+    }
+}